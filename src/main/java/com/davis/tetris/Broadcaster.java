@@ -0,0 +1,425 @@
+package com.davis.tetris;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Broadcasts the game board to spectators. Each board update is encoded once into a
+ * shared Frame and handed to every subscriber, which writes it to its channel on its
+ * own thread.
+ *
+ * Frames are terminal text: keyframes clear the screen and draw the whole board as
+ * renderBoard does, other frames move the cursor to each changed cell, so a viewer can
+ * simply cat a pipe, file or socket. A subscriber whose queue fills up has its pending
+ * frames dropped and skips ahead to the next keyframe rather than stalling the game.
+ *
+ * close() sends every subscriber a final keyframe and waits briefly for it to be written
+ * so spectators see how the game ended.
+ */
+public class Broadcaster {
+    private static final int KEYFRAME_INTERVAL = 50;
+    private static final int SUBSCRIBER_QUEUE = 8;
+    private static final long CLOSE_TIMEOUT_MILLIS = 1000;
+
+    private static final byte[] CLEAR_SCREEN = ascii("\033[H\033[2J");
+
+    private final int boardWidth;
+    private final int boardHeight;
+    private final int frameCapacity;
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+    private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final List<Closeable> servers = new CopyOnWriteArrayList<Closeable>();
+
+    // Set once close() has been called; no further frames or subscribers are accepted
+    private volatile boolean finished = false;
+    private volatile Frame finalFrame = null;
+
+    // Board as of the last encoded frame, used to compute deltas
+    private int[][] previous = null;
+    private int framesSinceKeyframe = 0;
+    private boolean keyframeRequested = false;
+
+    /**
+     * Create a broadcaster for a board of the given size
+     *
+     * @param boardWidth - number of columns on the board
+     * @param boardHeight - number of rows on the board
+     */
+    public Broadcaster(int boardWidth, int boardHeight) {
+        this.boardWidth = boardWidth;
+        this.boardHeight = boardHeight;
+
+        //Board rows plus the bottom wall, each with both side walls and a newline
+        this.frameCapacity = CLEAR_SCREEN.length + (boardHeight + 1) * (boardWidth + 3);
+    }
+
+    /**
+     * Add a subscriber writing frames to the given channel. The subscriber starts
+     * receiving frames at the next keyframe.
+     *
+     * @param channel - destination for encoded frames
+     */
+    public void subscribe(WritableByteChannel channel) {
+        if ( finished ) {
+            closeQuietly(channel);
+            return;
+        }
+
+        Subscriber subscriber = new Subscriber(channel);
+        subscribers.add(subscriber);
+
+        Thread writer = new Thread(subscriber, "spectator-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Subscribe a file or named pipe. The file is opened on a background thread since
+     * opening a pipe blocks until a reader is present.
+     *
+     * @param file - file or named pipe to write frames to
+     */
+    public void subscribe(final File file) {
+        Thread opener = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    subscribe(new FileOutputStream(file).getChannel());
+                } catch (IOException e) {
+                    System.err.println("Unable to open spectator file " + file + ": " + e.getMessage());
+                }
+            }
+        }, "spectator-file");
+        opener.setDaemon(true);
+        opener.start();
+    }
+
+    /**
+     * Accept spectator connections on a loopback port, subscribing each one
+     *
+     * @param port - local port to listen on
+     * @throws IOException if the port cannot be bound
+     */
+    public void listen(int port) throws IOException {
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        servers.add(server);
+
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (;;) {
+                        SocketChannel socket = server.accept();
+                        socket.shutdownInput();
+                        subscribe(socket);
+                    }
+                } catch (IOException e) {
+                    //Stop accepting spectators
+                }
+            }
+        }, "spectator-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Encode the board once and fan the frame out to all subscribers
+     *
+     * @param board - current game board
+     */
+    public void publish(int[][] board) {
+        if ( finished ) {
+            return;
+        }
+
+        if ( subscribers.isEmpty() ) {
+            //Nobody to send deltas to - the next subscriber needs a keyframe anyway
+            previous = null;
+            return;
+        }
+
+        Frame frame = encode(board);
+
+        for ( Subscriber subscriber : subscribers ) {
+            if ( subscriber.closed ) {
+                continue;
+            }
+
+            if ( subscriber.needsKeyframe ) {
+                if ( !frame.isKeyframe() ) {
+                    keyframeRequested = true;
+                    continue;
+                }
+                subscriber.needsKeyframe = false;
+            }
+
+            if ( !subscriber.queue.offer(frame.retain()) ) {
+                frame.release();
+                subscriber.dropPending();
+                keyframeRequested = true;
+            } else if ( subscriber.closed ) {
+                //The writer exited while we were queueing - release the frame ourselves
+                subscriber.dropPending();
+            }
+        }
+
+        frame.release();
+    }
+
+    /**
+     * Send a final keyframe to every subscriber, stop accepting frames and spectators,
+     * and wait a short time for the subscribers to write out their queues
+     *
+     * @param board - final game board
+     * @param message - line shown below the board, or null for none
+     */
+    public void close(int[][] board, String message) {
+        if ( finished ) {
+            return;
+        }
+        finished = true;
+
+        for ( Closeable server : servers ) {
+            closeQuietly(server);
+        }
+
+        byte[] line = message == null ? new byte[0] : ascii(message + "\n");
+        ByteBuffer buffer = ByteBuffer.allocateDirect(frameCapacity + line.length);
+        encodeKeyframe(board, buffer);
+        buffer.put(line);
+        buffer.flip();
+
+        Frame frame = new Frame(buffer, true, this);
+        finalFrame = frame;
+
+        for ( Subscriber subscriber : subscribers ) {
+            if ( subscriber.closed ) {
+                continue;
+            }
+
+            //The final keyframe redraws everything, so anything still queued can go
+            if ( !subscriber.queue.offer(frame.retain()) ) {
+                subscriber.dropPending();
+                if ( !subscriber.queue.offer(frame) ) {
+                    frame.release();
+                }
+            }
+            if ( subscriber.closed ) {
+                subscriber.dropPending();
+            }
+        }
+        frame.release();
+
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+        for ( Subscriber subscriber : subscribers ) {
+            long remaining = deadline - System.currentTimeMillis();
+            try {
+                if ( remaining <= 0 || !subscriber.done.await(remaining, TimeUnit.MILLISECONDS) ) {
+                    //Give up on slow spectators
+                    break;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Return a released frame buffer to the pool
+     */
+    void recycle(ByteBuffer buffer) {
+        buffer.clear();
+        pool.offer(buffer);
+    }
+
+    private Frame encode(int[][] board) {
+        ByteBuffer buffer = pool.poll();
+        if ( buffer == null ) {
+            buffer = ByteBuffer.allocateDirect(frameCapacity);
+        }
+
+        boolean keyframe = previous == null ||
+                           keyframeRequested ||
+                           framesSinceKeyframe >= KEYFRAME_INTERVAL ||
+                           !encodeDelta(board, buffer);
+
+        if ( keyframe ) {
+            buffer.clear();
+            encodeKeyframe(board, buffer);
+            keyframeRequested = false;
+            framesSinceKeyframe = 0;
+        } else {
+            framesSinceKeyframe++;
+        }
+
+        if ( previous == null ) {
+            previous = new int[boardHeight][boardWidth];
+        }
+        for ( int row = 0; row < boardHeight; row++ ) {
+            System.arraycopy(board[row], 0, previous[row], 0, boardWidth);
+        }
+
+        buffer.flip();
+        return new Frame(buffer, keyframe, this);
+    }
+
+    private void encodeKeyframe(int[][] board, ByteBuffer buffer) {
+        buffer.put(CLEAR_SCREEN);
+
+        for ( int row = 0; row < boardHeight; row++ ) {
+            buffer.put((byte) '*');
+            for ( int col = 0; col < boardWidth; col++ ) {
+                buffer.put(cell(board[row][col]));
+            }
+            buffer.put((byte) '*');
+            buffer.put((byte) '\n');
+        }
+
+        //Render the bottom
+        for ( int col = 0; col < boardWidth + 2; col++ ) {
+            buffer.put((byte) '*');
+        }
+        buffer.put((byte) '\n');
+    }
+
+    /**
+     * Encode the cells which changed since the previous frame as cursor movements
+     *
+     * @return False if the delta would not fit in the buffer, in which case a keyframe is needed
+     */
+    private boolean encodeDelta(int[][] board, ByteBuffer buffer) {
+        try {
+            for ( int row = 0; row < boardHeight; row++ ) {
+                for ( int col = 0; col < boardWidth; col++ ) {
+                    if ( board[row][col] != previous[row][col] ) {
+                        //Terminal coordinates are 1 based and the left wall takes a column
+                        moveCursor(buffer, row + 1, col + 2);
+                        buffer.put(cell(board[row][col]));
+                    }
+                }
+            }
+
+            //Leave the cursor below the board
+            moveCursor(buffer, boardHeight + 2, 1);
+            return true;
+        } catch (BufferOverflowException e) {
+            return false;
+        }
+    }
+
+    private static void moveCursor(ByteBuffer buffer, int row, int col) {
+        buffer.put((byte) '\033').put((byte) '[');
+        putNumber(buffer, row);
+        buffer.put((byte) ';');
+        putNumber(buffer, col);
+        buffer.put((byte) 'H');
+    }
+
+    private static void putNumber(ByteBuffer buffer, int value) {
+        if ( value >= 10 ) {
+            putNumber(buffer, value / 10);
+        }
+        buffer.put((byte) ('0' + value % 10));
+    }
+
+    private static byte cell(int value) {
+        return value == 1 ? (byte) '*' : (byte) ' ';
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            //Ignore
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] bytes = new byte[s.length()];
+        for ( int i = 0; i < bytes.length; i++ ) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+
+    /**
+     * A spectator channel with its own bounded frame queue and writer thread
+     */
+    private class Subscriber implements Runnable {
+        private final WritableByteChannel channel;
+        private final BlockingQueue<Frame> queue = new ArrayBlockingQueue<Frame>(SUBSCRIBER_QUEUE);
+
+        // Set while the subscriber must skip frames until the next keyframe
+        private volatile boolean needsKeyframe = true;
+
+        // Set once the writer has stopped; queued frames must then be released by whoever queued them
+        private volatile boolean closed = false;
+
+        // Released once the writer thread has exited
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        Subscriber(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        public void run() {
+            try {
+                for (;;) {
+                    Frame frame = queue.take();
+                    try {
+                        ByteBuffer data = frame.data();
+                        while ( data.hasRemaining() ) {
+                            channel.write(data);
+                        }
+                    } finally {
+                        frame.release();
+                    }
+
+                    if ( frame == finalFrame ) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                //Spectator went away
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            closed = true;
+            subscribers.remove(this);
+            dropPending();
+            closeQuietly(channel);
+            done.countDown();
+        }
+
+        /**
+         * Drop all queued frames after falling behind; the subscriber resumes at the next keyframe
+         */
+        private void dropPending() {
+            needsKeyframe = true;
+
+            Frame frame;
+            while ( (frame = queue.poll()) != null ) {
+                frame.release();
+            }
+        }
+    }
+}
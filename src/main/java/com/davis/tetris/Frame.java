@@ -0,0 +1,68 @@
+package com.davis.tetris;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An encoded spectator frame. A frame is encoded once by the Broadcaster and then
+ * shared by every subscriber; the underlying buffer is returned to the broadcaster's
+ * pool when the last reference is released.
+ *
+ * Keyframes redraw the whole board, other frames only contain the cells which changed
+ * since the previous frame.
+ */
+public final class Frame {
+    private final ByteBuffer data;
+    private final boolean keyframe;
+    private final Broadcaster owner;
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    /**
+     * Wrap an encoded buffer. The caller holds the initial reference.
+     *
+     * @param data - encoded frame, flipped and ready for reading
+     * @param keyframe - True if the frame redraws the whole board
+     * @param owner - broadcaster whose pool receives the buffer on release
+     */
+    Frame(ByteBuffer data, boolean keyframe, Broadcaster owner) {
+        this.data = data;
+        this.keyframe = keyframe;
+        this.owner = owner;
+    }
+
+    /**
+     * @return True if the frame redraws the whole board
+     */
+    public boolean isKeyframe() {
+        return keyframe;
+    }
+
+    /**
+     * @return a read-only view of the encoded bytes, sharing the frame's buffer
+     */
+    public ByteBuffer data() {
+        return data.asReadOnlyBuffer();
+    }
+
+    /**
+     * Take an additional reference to the frame
+     *
+     * @return this frame
+     */
+    public Frame retain() {
+        refs.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Drop a reference to the frame, recycling the buffer once none remain
+     */
+    public void release() {
+        int remaining = refs.decrementAndGet();
+        if ( remaining == 0 ) {
+            owner.recycle(data);
+        } else if ( remaining < 0 ) {
+            throw new IllegalStateException("Frame released too many times");
+        }
+    }
+}
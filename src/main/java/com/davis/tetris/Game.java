@@ -8,15 +8,51 @@ import java.util.*;
  * Created by kellyd on 11/28/15.
  */
 public class Game {
+    private static final int TICK_MILLIS = 500;
+    private static final int INPUT_CAPACITY = 16;
+    private static final String GAME_OVER_MESSAGE = "Reached the top! Game Over";
+
     private Piece activePiece = null;
 
     private int boardWidth;
     private int boardHeight;
 
-    private Random random = new Random(System.currentTimeMillis());
-    private Scanner sc;
+    // Piece generator state. A plain linear congruential generator (the same one
+    // java.util.Random uses) so the state can be saved by mark() and copied by fork().
+    private long seed = System.currentTimeMillis();
+
+    private KeyboardInput input;
+    private Broadcaster broadcaster;
 
     private int[][] board;
+    private boolean gameOver = false;
+
+    // Board rows are shared copy-on-write between forked games. A row may only
+    // be written in place once this game owns it, otherwise it is cloned first.
+    private boolean[] ownedRows;
+
+    // Undo journal of (cell index, previous value) pairs, recorded only while
+    // at least one mark is outstanding
+    private int[] journal = new int[64];
+    private int journalSize = 0;
+    private List<Mark> marks = new ArrayList<Mark>();
+
+    /**
+     * Game state saved by mark() which is not covered by the board journal
+     */
+    private static class Mark {
+        private final int journalPosition;
+        private final Piece activePiece;
+        private final boolean gameOver;
+        private final long seed;
+
+        Mark(int journalPosition, Piece activePiece, boolean gameOver, long seed) {
+            this.journalPosition = journalPosition;
+            this.activePiece = activePiece;
+            this.gameOver = gameOver;
+            this.seed = seed;
+        }
+    }
 
     /**
      * Initial game of tetris
@@ -28,60 +64,207 @@ public class Game {
         this.boardWidth = boardWidth;
         this.boardHeight = boardHeight;
         this.board = new int[boardHeight][boardWidth];
+        this.ownedRows = new boolean[boardHeight];
+        Arrays.fill(ownedRows, true);
+    }
+
+    /**
+     * Forked game sharing the board rows of the parent
+     *
+     * @param parent - game to fork
+     */
+    private Game(Game parent) {
+        this.boardWidth = parent.boardWidth;
+        this.boardHeight = parent.boardHeight;
+        this.board = parent.board.clone();
+        this.ownedRows = new boolean[boardHeight];
+        this.gameOver = parent.gameOver;
+        this.seed = parent.seed;
+
+        if ( parent.activePiece != null ) {
+            this.activePiece = new Piece(parent.activePiece);
+        }
+
+        //Neither game may write the shared rows in place any more
+        Arrays.fill(parent.ownedRows, false);
+    }
+
+    /**
+     * Broadcast every rendered frame to spectators
+     *
+     * @param broadcaster - spectator broadcaster, or null to disable broadcasting
+     */
+    public void setBroadcaster(Broadcaster broadcaster) {
+        this.broadcaster = broadcaster;
+    }
+
+    /**
+     * Fork the current game state. Board rows are shared with this game and only
+     * copied when either game writes to them, so forking does not copy any cells.
+     *
+     * @return an independent copy of this game
+     */
+    public Game fork() {
+        return new Game(this);
+    }
+
+    /**
+     * Mark the current game state so it can later be restored with {@link #undo()}.
+     * Marks nest; each call must be matched by either undo() or commit().
+     */
+    public void mark() {
+        marks.add(new Mark(journalSize, activePiece == null ? null : new Piece(activePiece), gameOver, seed));
+    }
+
+    /**
+     * Restore the game state saved by the most recent mark. Only the cells written
+     * since that mark are touched.
+     */
+    public void undo() {
+        if ( marks.isEmpty() ) {
+            throw new IllegalStateException("No mark to undo to");
+        }
+
+        Mark mark = marks.remove(marks.size() - 1);
+        activePiece = mark.activePiece;
+        gameOver = mark.gameOver;
+        seed = mark.seed;
+
+        while ( journalSize > mark.journalPosition ) {
+            journalSize -= 2;
+            int index = journal[journalSize];
+            writeCell(index / boardWidth, index % boardWidth, journal[journalSize + 1]);
+        }
+    }
+
+    /**
+     * Discard the most recent mark, keeping all changes made since it was taken
+     */
+    public void commit() {
+        if ( marks.isEmpty() ) {
+            throw new IllegalStateException("No mark to commit");
+        }
+
+        marks.remove(marks.size() - 1);
+
+        if ( marks.isEmpty() ) {
+            journalSize = 0;
+        }
+    }
+
+    /**
+     * Advance the game by a single command without rendering
+     *
+     * @param c - command to apply
+     * @return True if the game is over
+     */
+    public boolean step(Command c) {
+        updateBoard(c);
+        return gameOver;
+    }
+
+    /**
+     * @return True once a new piece could not be placed on the board
+     */
+    public boolean isGameOver() {
+        return gameOver;
+    }
+
+    public int getBoardWidth() {
+        return boardWidth;
+    }
+
+    public int getBoardHeight() {
+        return boardHeight;
+    }
+
+    /**
+     * Value of a board cell. The active piece is included since it is written to the board.
+     *
+     * @param row - board row
+     * @param col - board column
+     * @return 1 if the cell is occupied, 0 otherwise
+     */
+    public int getCell(int row, int col) {
+        return board[row][col];
+    }
+
+    /**
+     * @return a copy of the falling piece, or null before the first update
+     */
+    public Piece getActivePiece() {
+        return activePiece == null ? null : new Piece(activePiece);
     }
 
     /**
      * Start a game of Tetris
      */
     public void start() {
-        sc = new Scanner(System.in);
+        input = new KeyboardInput(System.in, INPUT_CAPACITY);
+        input.start();
+
+        Command[] pending = new Command[INPUT_CAPACITY];
+
+        updateBoard(Command.NIL);
+        renderFrame();
+        checkGameOver();
 
-        Command c = Command.NIL;
         for (;;) {
-            updateBoard(c);
-            renderBoard();
-
-            c = Command.NIL;
-            while ( c == Command.NIL ) {
-                try {
-                    c = parseInput(sc.nextLine());
-                } catch (NoSuchElementException e) {
-                    System.exit(0);
-                }
+            try {
+                Thread.sleep(TICK_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            int count = input.drain(pending);
+            if ( count == 0 && input.isClosed() ) {
+                exit(null);
+            }
+
+            for ( int i = 0; i < count; i++ ) {
+                moveBoard(pending[i]);
             }
+
+            //The piece falls one row per tick regardless of input
+            updateBoard(Command.NIL);
+
+            renderFrame();
+            checkGameOver();
+        }
+    }
+
+    /**
+     * Ends the program once the game is over
+     */
+    private void checkGameOver() {
+        if ( gameOver ) {
+            System.out.println(GAME_OVER_MESSAGE);
+            exit(GAME_OVER_MESSAGE);
         }
     }
 
     /**
-     * Parse the user input into a known Command enum
+     * Ends the program, first letting spectators see the final board
      *
-     * @param input raw user input
-     * @return return a Command or the NIL command if unable to parse input
+     * @param message - line shown to spectators below the board, or null for none
      */
-    private Command parseInput(String input) {
-        Command result = Command.NIL;
-        if ( input != null ) {
-            if ( "a".equalsIgnoreCase(input.trim()) ) {
-                result = Command.MOVE_LEFT;
-            } else if ( "d".equalsIgnoreCase(input.trim())) {
-                result = Command.MOVE_RIGHT;
-            } else if ( "w".equalsIgnoreCase(input.trim())) {
-                result = Command.ROTATE_CCW;
-            } else if ( "s".equalsIgnoreCase(input.trim())) {
-                result = Command.ROTATE_CW;
-            }
+    private void exit(String message) {
+        if ( broadcaster != null ) {
+            broadcaster.close(board, message);
         }
-        return result;
+        System.exit(0);
     }
 
     /**
      * Generates a new Tetris piece and places it randomly
      */
     private void generateNewPiece() {
-        activePiece = Piece.randomPiece();
+        Tetromino[] selections = Tetromino.values();
+        Tetromino selected = selections[nextRandom(selections.length)];
+        activePiece = new Piece(selected, nextRandom(selected.orientations()));
 
         int row = -activePiece.bottomRow(); //only bottom is visible
-        int col = random.nextInt(boardWidth);
+        int col = nextRandom(boardWidth);
 
         if ( col + activePiece.rightColumn() >= boardWidth ) {
             col = boardWidth - activePiece.rightColumn() - 1;
@@ -93,26 +276,83 @@ public class Game {
         activePiece.setColumn(col);
 
         if ( collideBottom() ) {
-            System.out.println("Reached the top! Game Over");
-            System.exit(0);
+            gameOver = true;
         }
     }
 
+    /**
+     * Advances the piece generator
+     *
+     * @param bound - upper bound (exclusive)
+     * @return a pseudo random number between 0 and bound
+     */
+    private int nextRandom(int bound) {
+        seed = (seed * 0x5DEECE66DL + 0xBL) & ((1L << 48) - 1);
+        return (int) (seed >>> 17) % bound;
+    }
+
     /**
      * Update game state based on user input
      *
      * @param c - user input command
      */
     private void updateBoard(Command c) {
+        if ( gameOver ) {
+            return;
+        }
+
         if ( activePiece == null ) {
             generateNewPiece();
-            writeActivePieceToBoard();
+            if ( !gameOver ) {
+                writeActivePieceToBoard();
+            }
             return;
         }
 
         //Clear the current location of the active piece
         clearActivePieceFromBoard();
 
+        moveActivePiece(c);
+
+        activePiece.moveDown();
+
+        if ( collideBottom() ) {
+            activePiece.moveUp();
+
+            writeActivePieceToBoard();
+            generateNewPiece();
+
+            if ( gameOver ) {
+                //The new piece overlaps the stack - leave it off the board
+                return;
+            }
+        }
+
+        writeActivePieceToBoard();
+    }
+
+    /**
+     * Move or rotate the active piece based on user input without letting it fall
+     *
+     * @param c - user input command
+     */
+    private void moveBoard(Command c) {
+        if ( gameOver || activePiece == null ) {
+            return;
+        }
+
+        clearActivePieceFromBoard();
+        moveActivePiece(c);
+        writeActivePieceToBoard();
+    }
+
+    /**
+     * Move or rotate the active piece, undoing the move if it collides.
+     * The piece must already be cleared from the board.
+     *
+     * @param c - user input command
+     */
+    private void moveActivePiece(Command c) {
         switch(c) {
             case ROTATE_CCW:
                 activePiece.rotateCCW();
@@ -168,17 +408,6 @@ public class Game {
 
                 break;
         }
-
-        activePiece.moveDown();
-
-        if ( collideBottom() ) {
-            activePiece.moveUp();
-
-            writeActivePieceToBoard();
-            generateNewPiece();
-        }
-
-        writeActivePieceToBoard();
     }
 
     /**
@@ -192,7 +421,7 @@ public class Game {
 
                 if ( boardRow >= 0 && boardRow < boardHeight &&
                      boardCol >= 0 && boardCol < boardWidth ) {
-                    board[boardRow][boardCol] = activePiece.getValue(row, col);
+                    setCell(boardRow, boardCol, activePiece.getValue(row, col));
                 }
             }
         }
@@ -209,12 +438,51 @@ public class Game {
 
                 if ( boardRow >= 0 && boardRow < boardHeight &&
                         boardCol >= 0 && boardCol < boardWidth ) {
-                    board[boardRow][boardCol] = 0;
+                    setCell(boardRow, boardCol, 0);
                 }
             }
         }
     }
 
+    /**
+     * Sets a board cell, journaling the previous value if a mark is outstanding
+     *
+     * @param row - board row
+     * @param col - board column
+     * @param value - new cell value
+     */
+    private void setCell(int row, int col, int value) {
+        int previous = board[row][col];
+        if ( previous == value ) {
+            return;
+        }
+
+        if ( !marks.isEmpty() ) {
+            if ( journalSize == journal.length ) {
+                journal = Arrays.copyOf(journal, journal.length * 2);
+            }
+            journal[journalSize++] = row * boardWidth + col;
+            journal[journalSize++] = previous;
+        }
+
+        writeCell(row, col, value);
+    }
+
+    /**
+     * Sets a board cell, first copying the row if it is shared with a forked game
+     *
+     * @param row - board row
+     * @param col - board column
+     * @param value - new cell value
+     */
+    private void writeCell(int row, int col, int value) {
+        if ( !ownedRows[row] ) {
+            board[row] = board[row].clone();
+            ownedRows[row] = true;
+        }
+        board[row][col] = value;
+    }
+
     /**
      * Check for collisions with the bottom wall and any existing pieces
      *
@@ -316,10 +584,24 @@ public class Game {
         }
     }
 
+    /**
+     * Renders the board and publishes it to any spectators
+     */
+    private void renderFrame() {
+        renderBoard();
+
+        if ( broadcaster != null ) {
+            broadcaster.publish(board);
+        }
+    }
+
     /**
      * Renders the board to System.out
      */
     private void renderBoard() {
+        //Home the cursor and clear the screen so each tick redraws in place
+        System.out.print("\033[H\033[2J");
+
         for ( int row = 0; row < board.length; row++ ) {
             System.out.print("*");
             for (int col = 0; col < board[row].length; col++ ) {
@@ -0,0 +1,236 @@
+package com.davis.tetris;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Non-blocking keyboard input. Raw bytes are read from stdin on a dedicated thread,
+ * decoded straight into Command ordinals and queued in a ring buffer which the game
+ * loop drains once per tick.
+ *
+ * The terminal is switched to raw (non-canonical) mode with stty when available so
+ * keys arrive without pressing enter. Without a terminal, input is still read line
+ * by line and line endings are ignored.
+ *
+ * No input is ever dropped: when the ring buffer is full the reader thread waits until
+ * the game loop drains it, so piped input is applied in full at the game's pace.
+ */
+public class KeyboardInput {
+    private static final Command[] COMMANDS = Command.values();
+    private static final byte NIL = (byte) Command.NIL.ordinal();
+
+    // Escape sequence decoder states. Sequences such as arrow keys (ESC [ A) are
+    // skipped entirely so their final byte is not mistaken for a command key.
+    private static final int STATE_KEY = 0;
+    private static final int STATE_ESCAPE = 1;
+    private static final int STATE_SEQUENCE = 2;
+
+    private static final int ESC = 0x1b;
+
+    // Lookup table from input byte to Command ordinal
+    private static final byte[] KEY_MAP = new byte[256];
+
+    static {
+        Arrays.fill(KEY_MAP, NIL);
+        mapKey('a', Command.MOVE_LEFT);
+        mapKey('d', Command.MOVE_RIGHT);
+        mapKey('w', Command.ROTATE_CCW);
+        mapKey('s', Command.ROTATE_CW);
+    }
+
+    private static void mapKey(char key, Command command) {
+        KEY_MAP[Character.toLowerCase(key)] = (byte) command.ordinal();
+        KEY_MAP[Character.toUpperCase(key)] = (byte) command.ordinal();
+    }
+
+    // Single producer / single consumer ring buffer. Only the reader thread writes
+    // tail and only the game loop writes head.
+    private final byte[] ring;
+    private final int mask;
+    private volatile int head = 0;
+    private volatile int tail = 0;
+
+    private volatile boolean closed = false;
+    private volatile Thread reader;
+
+    private final InputStream in;
+    private String savedTerminalState;
+
+    /**
+     * Create keyboard input for the given stream
+     *
+     * @param in - stream to read key bytes from
+     * @param capacity - maximum number of pending commands, rounded up to a power of two
+     */
+    public KeyboardInput(InputStream in, int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.in = in;
+        this.ring = new byte[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Switch the terminal to raw mode and start the reader thread
+     */
+    public void start() {
+        enableRawMode();
+
+        reader = new Thread(new Runnable() {
+            public void run() {
+                readLoop();
+            }
+        }, "keyboard-input");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Move all pending commands into the given array without blocking
+     *
+     * @param out - destination for pending commands
+     * @return the number of commands written to out
+     */
+    public int drain(Command[] out) {
+        int count = 0;
+        int h = head;
+        int t = tail;
+        while ( h != t && count < out.length ) {
+            out[count++] = COMMANDS[ring[h & mask]];
+            h++;
+        }
+        head = h;
+
+        //Wake the reader if it is waiting for space
+        Thread waiting = reader;
+        if ( count > 0 && waiting != null ) {
+            LockSupport.unpark(waiting);
+        }
+        return count;
+    }
+
+    /**
+     * @return True once the input stream has reached end of file and all commands are drained
+     */
+    public boolean isClosed() {
+        return closed && head == tail;
+    }
+
+    private void readLoop() {
+        ReadableByteChannel channel = Channels.newChannel(in);
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        int state = STATE_KEY;
+
+        try {
+            while ( channel.read(buffer) >= 0 ) {
+                buffer.flip();
+                while ( buffer.hasRemaining() ) {
+                    int b = buffer.get() & 0xff;
+
+                    switch ( state ) {
+                        case STATE_ESCAPE:
+                            //CSI and SS3 sequences continue, anything else (e.g. alt+key) ends here
+                            state = ( b == '[' || b == 'O' ) ? STATE_SEQUENCE : STATE_KEY;
+                            break;
+                        case STATE_SEQUENCE:
+                            //Parameter and intermediate bytes are 0x20-0x3f, the final byte ends the sequence
+                            if ( b < 0x20 || b > 0x3f ) {
+                                state = STATE_KEY;
+                            }
+                            break;
+                        default:
+                            if ( b == ESC ) {
+                                state = STATE_ESCAPE;
+                            } else if ( KEY_MAP[b] != NIL ) {
+                                offer(KEY_MAP[b]);
+                            }
+                            break;
+                    }
+                }
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            //Treat read failures as end of input
+        }
+
+        closed = true;
+    }
+
+    /**
+     * Queue a command ordinal, waiting for the game loop to drain if the ring buffer is full
+     */
+    private void offer(byte command) {
+        int t = tail;
+        while ( t - head == ring.length ) {
+            LockSupport.park(this);
+        }
+        ring[t & mask] = command;
+        tail = t + 1;
+    }
+
+    private void enableRawMode() {
+        File tty = new File("/dev/tty");
+        if ( !tty.exists() ) {
+            return;
+        }
+
+        savedTerminalState = stty(tty, "-g");
+        if ( savedTerminalState == null ) {
+            return;
+        }
+
+        if ( stty(tty, "-icanon", "-echo", "min", "1") == null ) {
+            savedTerminalState = null;
+            return;
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                restoreTerminal();
+            }
+        }));
+    }
+
+    private void restoreTerminal() {
+        if ( savedTerminalState != null ) {
+            stty(new File("/dev/tty"), savedTerminalState);
+        }
+    }
+
+    /**
+     * Run stty against the terminal
+     *
+     * @return stty output, or null if it could not be run
+     */
+    private static String stty(File tty, String... args) {
+        String[] command = new String[args.length + 1];
+        command[0] = "stty";
+        System.arraycopy(args, 0, command, 1, args.length);
+
+        try {
+            Process process = new ProcessBuilder(command)
+                    .redirectInput(tty)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+
+            StringBuilder output = new StringBuilder();
+            InputStream stdout = process.getInputStream();
+            int b;
+            while ( (b = stdout.read()) != -1 ) {
+                output.append((char) b);
+            }
+
+            return process.waitFor() == 0 ? output.toString().trim() : null;
+        } catch (IOException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+}
@@ -1,11 +1,71 @@
 package com.davis.tetris;
 
+import java.io.File;
+import java.io.IOException;
+
 /**
  * Created by kellyd on 11/28/15.
+ *
+ * Options:
+ *   --spectate-port PORT - broadcast the game to spectators connecting to the loopback port
+ *   --spectate-file PATH - broadcast the game to a file or named pipe (may be repeated)
  */
 public class Main {
+    private static final int BOARD_WIDTH = 20;
+    private static final int BOARD_HEIGHT = 20;
+
     public static void main(String[] args) {
-        Game game = new Game(20,20);
+        Game game = new Game(BOARD_WIDTH, BOARD_HEIGHT);
+
+        Broadcaster broadcaster = null;
+        for ( int i = 0; i < args.length; i += 2 ) {
+            String option = args[i];
+            if ( !"--spectate-port".equals(option) && !"--spectate-file".equals(option) ) {
+                usage("Unknown option " + option);
+            }
+            if ( i + 1 >= args.length ) {
+                usage("Missing value for " + option);
+            }
+            String value = args[i + 1];
+
+            if ( broadcaster == null ) {
+                broadcaster = new Broadcaster(BOARD_WIDTH, BOARD_HEIGHT);
+            }
+
+            if ( "--spectate-port".equals(option) ) {
+                int port = -1;
+                try {
+                    port = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    //Reported below
+                }
+                if ( port < 0 || port > 65535 ) {
+                    usage("Invalid port " + value);
+                }
+
+                try {
+                    broadcaster.listen(port);
+                } catch (IOException e) {
+                    System.err.println("Unable to listen for spectators on port " + port + ": " + e.getMessage());
+                    System.exit(1);
+                }
+            } else {
+                broadcaster.subscribe(new File(value));
+            }
+        }
+        game.setBroadcaster(broadcaster);
+
         game.start();
     }
+
+    /**
+     * Print an error and the usage to stderr, then exit
+     *
+     * @param error - description of the invalid argument
+     */
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("Usage: Main [--spectate-port PORT] [--spectate-file PATH]...");
+        System.exit(1);
+    }
 }
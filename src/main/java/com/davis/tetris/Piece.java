@@ -28,6 +28,18 @@ public class Piece {
         this.orientation = orientation;
     }
 
+    /**
+     * Create a copy of an existing game piece, including its position
+     *
+     * @param other the piece to copy
+     */
+    public Piece(Piece other) {
+        this.tetromino = other.tetromino;
+        this.orientation = other.orientation;
+        this.row = other.row;
+        this.column = other.column;
+    }
+
     /**
      * Generate a random Tetris game piece
      *